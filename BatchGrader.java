@@ -0,0 +1,375 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+import javax.tools.ToolProvider;
+
+/**
+ * Runs many programs built from the AppBuilder template in one JVM. Each
+ * program is loaded into its own class loader, so the static state of one
+ * submission never leaks into another, and is driven through the headless
+ * entry point of the template (setup(), preset field values, then run()).
+ * Programs run in parallel on a fixed pool with a time limit, an allocation
+ * limit and an output limit per run, and each output transcript is kept.
+ * <p>
+ * A submission is either a .java file, compiled in-process against the
+ * grader's own class path, or a directory of compiled classes. Usage:
+ * <pre>
+ * java BatchGrader [--threads=N] [--timeout=SECONDS] [--max-mb=MB]
+ *                  [--max-output=CHARS] [--props=FILE] [--stdin=FILE]
+ *                  [--expect=FILE] [--out=DIR] submission...
+ * </pre>
+ * --props holds the field values (as for AppBuilder --headless), --stdin the
+ * answers to input() prompts, --expect the output every program should
+ * print and --out a directory that receives one transcript per submission.
+ * <p>
+ * Limits are best effort: a run that ignores interrupts keeps its thread
+ * after the time limit (it is a daemon and is abandoned), only allocations
+ * on the thread that calls run() are counted, and a program that calls
+ * System.exit ends the whole batch.
+ */
+public class BatchGrader {
+
+    private static final String ENTRY_POINT = "runHeadless";
+    private static final int DEFAULT_TIMEOUT_SECONDS = 10;
+    private static final int DEFAULT_MAX_MB = 256;
+    private static final int DEFAULT_MAX_OUTPUT = 1 << 20;
+    // how often a running program's allocations are checked
+    private static final long SAMPLE_MILLIS = 20;
+
+    public enum Status { OK, MISMATCH, FAILED, TIMEOUT, MEMORY, COMPILE_ERROR, UNSUPPORTED }
+
+    /**
+     * The outcome of one submission.
+     *
+     * @param name the submission path as given on the command line
+     * @param status how the run ended
+     * @param millis time spent running (not compiling) the program
+     * @param output everything the program printed, up to the output limit
+     * @param detail the first error line, or an empty string
+     */
+    public record Result(String name, Status status, long millis, String output, String detail) { }
+
+    private record Settings(int threads, long timeoutMillis, long maxBytes, int maxOutput,
+                            Properties props, String stdin, String expected, Path outDir) { }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        long timeout = DEFAULT_TIMEOUT_SECONDS;
+        long maxMb = DEFAULT_MAX_MB;
+        int maxOutput = DEFAULT_MAX_OUTPUT;
+        var props = new Properties();
+        String stdin = "";
+        String expected = null;
+        Path outDir = null;
+        var submissions = new ArrayList<Path>();
+        for (var arg : args) {
+            var value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--threads=")) threads = Integer.parseInt(value);
+            else if (arg.startsWith("--timeout=")) timeout = Long.parseLong(value);
+            else if (arg.startsWith("--max-mb=")) maxMb = Long.parseLong(value);
+            else if (arg.startsWith("--max-output=")) maxOutput = Integer.parseInt(value);
+            else if (arg.startsWith("--stdin=")) stdin = Files.readString(Paths.get(value));
+            else if (arg.startsWith("--expect=")) expected = Files.readString(Paths.get(value));
+            else if (arg.startsWith("--out=")) outDir = Files.createDirectories(Paths.get(value));
+            else if (arg.startsWith("--props=")) {
+                try (var in = Files.newBufferedReader(Paths.get(value), StandardCharsets.UTF_8)) {
+                    props.load(in);
+                }
+            } else if (arg.startsWith("--")) {
+                System.err.println("Unknown option " + arg);
+                System.exit(2);
+            } else submissions.add(Paths.get(arg));
+        }
+        if (submissions.isEmpty()) {
+            System.err.println("Usage: java BatchGrader [options] submission...");
+            System.exit(2);
+        }
+
+        var settings = new Settings(threads, timeout * 1000, maxMb << 20, maxOutput,
+                props, stdin, expected, outDir);
+        long start = System.nanoTime();
+        var results = grade(submissions, settings);
+        int failed = 0;
+        System.out.printf("%-40s %-14s %8s %10s  %s%n", "Program", "Status", "ms", "Output", "Detail");
+        for (var r : results) {
+            System.out.printf("%-40s %-14s %8d %10d  %s%n", r.name(), r.status(), r.millis(),
+                    r.output().length(), r.detail());
+            if (r.status() != Status.OK)
+                failed++;
+            if (outDir != null)
+                Files.writeString(outDir.resolve(r.name().replaceAll("[/\\\\:]", "_") + ".txt"), r.output());
+        }
+        System.out.printf("%d programs, %d not OK, %.1f s%n", results.size(), failed,
+                (System.nanoTime() - start) / 1e9);
+        System.exit(failed == 0 ? 0 : 1);
+    } // end main
+
+    /**
+     * Grades every submission on a pool of {@code settings.threads()} workers
+     * and returns the results in submission order.
+     */
+    private static List<Result> grade(List<Path> submissions, Settings settings) throws Exception {
+        var workDir = Files.createTempDirectory("grader");
+        var pool = Executors.newFixedThreadPool(settings.threads(),
+                Thread.ofPlatform().name("grader-", 1).daemon().factory());
+        try {
+            var futures = new ArrayList<Future<Result>>();
+            for (int i = 0; i < submissions.size(); i++) {
+                var submission = submissions.get(i);
+                var classDir = workDir.resolve(String.valueOf(i));
+                futures.add(pool.submit(() -> gradeOne(submission, classDir, settings)));
+            }
+            var results = new ArrayList<Result>();
+            for (var future : futures)
+                results.add(future.get());
+            return results;
+        } finally {
+            pool.shutdownNow();
+            deleteTree(workDir);
+        }
+    }
+
+    /**
+     * Compiles or locates one submission, loads it in a fresh class loader
+     * and runs it under the limits in {@code settings}.
+     */
+    private static Result gradeOne(Path submission, Path classDir, Settings settings) {
+        var name = submission.toString();
+        var fileName = submission.getFileName().toString();
+        try {
+            Path classes = submission;
+            String className = null;
+            if (fileName.endsWith(".java")) {
+                var errors = compile(submission, Files.createDirectories(classDir));
+                if (!errors.isEmpty())
+                    return new Result(name, Status.COMPILE_ERROR, 0, "", firstLine(errors));
+                classes = classDir;
+                className = fileName.substring(0, fileName.length() - 5);
+            }
+            try (var loader = new IsolatedLoader(classes.toUri().toURL())) {
+                var entry = findEntryPoint(loader, classes, className);
+                if (entry == null)
+                    return new Result(name, Status.UNSUPPORTED, 0, "", "no headless entry point");
+                return run(name, entry, settings);
+            }
+        } catch (Exception | UnsupportedClassVersionError e) {
+            return new Result(name, Status.FAILED, 0, "", e.toString());
+        }
+    }
+
+    /**
+     * Calls the entry point on its own daemon thread, so a program that never
+     * returns can be abandoned, and watches its time and allocations.
+     */
+    private static Result run(String name, Method entry, Settings settings) throws InterruptedException {
+        var out = new LimitedWriter(settings.maxOutput());
+        var err = new StringWriter();
+        var in = new BufferedReader(new StringReader(settings.stdin()));
+        var outcome = new CompletableFuture<Object>();
+        var thread = Thread.ofPlatform().name("grade-" + name).daemon().unstarted(() -> {
+            try {
+                outcome.complete(entry.invoke(null, out, new PrintWriter(err), in,
+                        List.of(), settings.props()));
+            } catch (InvocationTargetException e) {
+                outcome.completeExceptionally(e.getCause());
+            } catch (Throwable e) {
+                outcome.completeExceptionally(e);
+            }
+        });
+
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long start = System.nanoTime();
+        long deadline = start + settings.timeoutMillis() * 1_000_000;
+        thread.start();
+        long baseline = threads.getThreadAllocatedBytes(thread.threadId());
+        Status limit = null;
+        while (thread.isAlive() && limit == null) {
+            thread.join(SAMPLE_MILLIS);
+            long allocated = threads.getThreadAllocatedBytes(thread.threadId());
+            if (allocated >= 0 && baseline >= 0 && allocated - baseline > settings.maxBytes())
+                limit = Status.MEMORY;
+            else if (System.nanoTime() > deadline)
+                limit = Status.TIMEOUT;
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        if (limit != null) {
+            thread.interrupt();
+            return new Result(name, limit, millis, out.toString(),
+                    limit == Status.TIMEOUT ? "over " + settings.timeoutMillis() + " ms" : "over the allocation limit");
+        }
+
+        try {
+            int code = (Integer) outcome.join();
+            var text = out.toString();
+            if (code != 0)
+                return new Result(name, Status.FAILED, millis, text, firstLine(err.toString()));
+            if (settings.expected() != null && !settings.expected().equals(text))
+                return new Result(name, Status.MISMATCH, millis, text, "output differs from --expect");
+            return new Result(name, Status.OK, millis, text, firstLine(err.toString()));
+        } catch (CompletionException e) {
+            var cause = e.getCause() instanceof OutOfMemoryError ? Status.MEMORY : Status.FAILED;
+            return new Result(name, cause, millis, out.toString(), e.getCause().toString());
+        }
+    }
+
+    /**
+     * Compiles a submission into classDir with the grader's class path and
+     * module path, so the JavaFX classes it refers to resolve. Preview
+     * features are enabled for the running release, since TestApp and
+     * FileReaderApp use string templates; the grader has to be started with
+     * --enable-preview as well to load the result.
+     *
+     * @return the compiler messages, empty on success
+     */
+    private static String compile(Path source, Path classDir) {
+        var compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null)
+            return "no Java compiler available (run the grader on a JDK)";
+        var options = new ArrayList<>(List.of("-d", classDir.toString(), "-proc:none",
+                "--enable-preview", "--release", String.valueOf(Runtime.version().feature()),
+                "-cp", System.getProperty("java.class.path")));
+        var modulePath = System.getProperty("jdk.module.path");
+        if (modulePath != null)
+            options.addAll(List.of("--module-path", modulePath, "--add-modules", "javafx.controls"));
+        var messages = new StringWriter();
+        try (var files = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+            var units = files.getJavaFileObjects(source);
+            boolean ok = compiler.getTask(messages, files, null, options, null, units).call();
+            return ok ? "" : messages.toString().isEmpty() ? "compilation failed" : messages.toString();
+        } catch (IOException e) {
+            return e.toString();
+        }
+    }
+
+    /**
+     * Finds the static headless entry point of the named class, or of the
+     * first top-level class in the directory that has one.
+     */
+    private static Method findEntryPoint(ClassLoader loader, Path classes, String className) throws IOException {
+        var candidates = new ArrayList<String>();
+        if (className != null)
+            candidates.add(className);
+        else try (Stream<Path> files = Files.list(classes)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(f -> f.endsWith(".class") && !f.contains("$"))
+                    .map(f -> f.substring(0, f.length() - 6))
+                    .sorted()
+                    .forEach(candidates::add);
+        }
+        for (var candidate : candidates) {
+            try {
+                var method = Class.forName(candidate, false, loader).getDeclaredMethod(ENTRY_POINT,
+                        Writer.class, PrintWriter.class, BufferedReader.class, List.class, Properties.class);
+                method.setAccessible(true);
+                return method;
+            } catch (UnsupportedClassVersionError e) {
+                throw e; // usually a preview class file and a grader run without --enable-preview
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // not a template program, try the next class
+            }
+        }
+        return null;
+    }
+
+    private static String firstLine(String text) {
+        var trimmed = text.strip();
+        int end = trimmed.indexOf('\n');
+        return end < 0 ? trimmed : trimmed.substring(0, end).strip();
+    }
+
+    private static void deleteTree(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException e) {
+            // the temp directory is left behind
+        }
+    }
+
+    /**
+     * A class loader that looks in the submission first. The grader is often
+     * started from a directory that holds its own AppBuilder.class, and the
+     * usual parent-first order would hand every submission that copy.
+     */
+    private static class IsolatedLoader extends URLClassLoader {
+        IsolatedLoader(URL classes) {
+            super(new URL[] {classes}, BatchGrader.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                var loaded = findLoadedClass(name);
+                if (loaded == null && !name.startsWith("java.") && !name.startsWith("javafx.")) {
+                    try {
+                        loaded = findClass(name);
+                    } catch (ClassNotFoundException e) {
+                        // not part of the submission
+                    }
+                }
+                if (loaded == null)
+                    return super.loadClass(name, resolve);
+                if (resolve)
+                    resolveClass(loaded);
+                return loaded;
+            }
+        }
+    }
+
+    /**
+     * Collects a program's output and fails the program once it has written
+     * more than the output limit, so an endless print loop cannot fill the heap.
+     */
+    private static class LimitedWriter extends Writer {
+        private final StringBuilder text = new StringBuilder();
+        private final int limit;
+
+        LimitedWriter(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            synchronized (lock) {
+                if (text.length() + length > limit) {
+                    text.append(buffer, offset, Math.max(0, limit - text.length()));
+                    throw new IOException("output limit of " + limit + " characters exceeded");
+                }
+                text.append(buffer, offset, length);
+            }
+        }
+
+        @Override
+        public void write(String str, int offset, int length) throws IOException {
+            synchronized (lock) {
+                if (text.length() + length > limit) {
+                    text.append(str, offset, offset + Math.max(0, limit - text.length()));
+                    throw new IOException("output limit of " + limit + " characters exceeded");
+                }
+                text.append(str, offset, offset + length);
+            }
+        }
+
+        @Override
+        public void flush() { }
+
+        @Override
+        public void close() { }
+
+        @Override
+        public String toString() {
+            synchronized (lock) {
+                return text.toString();
+            }
+        }
+    }
+}
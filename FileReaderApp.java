@@ -11,20 +11,29 @@ import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.geometry.*;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.*;
 import java.io.*;
 import java.text.*;
 import java.time.*;
 import java.util.*;
+import java.util.function.Supplier;
 
 import static java.util.FormatProcessor.FMT;
 
 public class FileReaderApp extends Application {
 
-    private final BorderPane root = new BorderPane();
+    private final BorderPane root = gui(BorderPane::new);
 
     private static final int WINDOW_WIDTH = 800;
     private static final int WINDOW_HEIGHT = 600;
@@ -37,26 +46,44 @@ public class FileReaderApp extends Application {
                 -fx-font-weight: bold;
                 -fx-font-size: \{OUTPUT_FONT_SIZE};
                 """;
-    private final HBox buttonBox = new HBox(DEFAULT_PADDING);
-    private final Button runBtn = new Button("Run");
-    private final Button clearBtn = new Button("Clear Output");
-    private final Button printBtn = new Button("Print");
-    private final TextArea display = new TextArea();
-    private final Label status = new Label("Status");
+    private final HBox buttonBox = gui(() -> new HBox(DEFAULT_PADDING));
+
+    // set by main for --headless runs; controls are then left null (see gui)
+    private static boolean headless = false;
+    private Writer headlessOut = null;
+    private PrintWriter headlessErr = null;
+    private BufferedReader headlessIn = null;
+
+    private final Button runBtn = gui(() -> new Button("Run"));
+    private final Button clearBtn = gui(() -> new Button("Clear Output"));
+    private final Button printBtn = gui(() -> new Button("Print"));
+    private final TextArea display = gui(TextArea::new);
+    private final Label status = gui(() -> new Label("Status"));
     private final StringBuilder output = new StringBuilder(128);
-    private final Clipboard clipboard = Clipboard.getSystemClipboard();
+    private final Clipboard clipboard = gui(Clipboard::getSystemClipboard);
     private final ClipboardContent content = new ClipboardContent();
-    private final GridPane form = new GridPane();
+    private final GridPane form = gui(GridPane::new);
     private final SecureRandom random = new SecureRandom();
-    private final Label instructions = new Label();
+    private final Label instructions = gui(Label::new);
 
-    private final Canvas canvas = new Canvas(CANVAS_WIDTH, CANVAS_HEIGHT);
-    private final GraphicsContext gc = canvas.getGraphicsContext2D();
+    private final Canvas canvas = gui(() -> new Canvas(CANVAS_WIDTH, CANVAS_HEIGHT));
+    private final GraphicsContext gc = canvas == null ? null : canvas.getGraphicsContext2D();
     private final NumberFormat currency = NumberFormat.getCurrencyInstance();
 
+    // files larger than this are paged through the file viewer instead of copied into the output
+    private static final long VIEWER_THRESHOLD = 8L * 1024 * 1024;
+    private final BorderPane fileViewPane = gui(BorderPane::new);
+    private final TextArea fileViewArea = gui(TextArea::new);
+    private final ScrollBar fileScroller = gui(ScrollBar::new);
+    private final Button closeViewBtn = gui(() -> new Button("Close File"));
+    private MappedFileView fileView = null;
+
     private String appTitle;
     private Label[] labels;
     private TextField[] fields;
+    // headless runs keep the form as plain strings instead of text fields
+    private String[] fieldValues;
+    private String[] fieldPrompts;
     private int rows;
     private int nextRow;
 
@@ -95,7 +122,19 @@ public class FileReaderApp extends Application {
             outputln(sel.getValue()); // action when combo box item is selected
         });
 
-        buttonBox.getChildren().addAll(runBtn, clearBtn, printBtn, sel);
+        fileViewArea.setWrapText(true);
+        fileViewArea.setEditable(false);
+        fileViewArea.setStyle(STYLE);
+        fileScroller.setOrientation(Orientation.VERTICAL);
+        fileScroller.valueProperty().addListener(
+                (obs, oldValue, newValue) -> showFilePage(newValue.longValue()));
+        fileViewPane.setCenter(fileViewArea);
+        fileViewPane.setRight(fileScroller);
+        closeViewBtn.setOnAction(e -> closeFileView());
+        closeViewBtn.setVisible(false);
+        closeViewBtn.setManaged(false);
+
+        buttonBox.getChildren().addAll(runBtn, clearBtn, printBtn, sel, closeViewBtn);
 
         root.setTop(form);
         root.setCenter(display);
@@ -119,18 +158,19 @@ public class FileReaderApp extends Application {
 
     // Replace "String" below with the object type that populates the ComboBox
     private final ObservableList<String> obl = FXCollections.observableArrayList();
-    private final ComboBox<String> sel = new ComboBox<>(obl);
+    private final ComboBox<String> sel = gui(() -> new ComboBox<>(obl));
 
     private void setup() throws Exception {
         appTitle = "Hello App";
         // Send comma-separated strings to the method below to generate data entry form:
         createForm("Filename");
 
-        setFormInstructions(fields.length > 0 ? "Enter the following information" : "");
+        setFormInstructions(rows > 0 ? "Enter the following information" : "");
 
         // items 1, 2 and 3 are just examples of how to add to the combo box
         obl.addAll("item 1", "item 2", "item 3");
-        sel.getSelectionModel().selectFirst();
+        if (sel != null) // there is no combo box in headless mode
+            sel.getSelectionModel().selectFirst();
     } // end setup
 
     private void run() throws Exception {
@@ -139,10 +179,24 @@ public class FileReaderApp extends Application {
             outputln("Please enter a filename.");
             return;
         }
+        Path path = Paths.get(filename);
         try {
-            List<String> lines = Files.readAllLines(Paths.get(filename));
-            outputln(String.join("\n", lines));
-
+            if (!headless && Files.size(path) > VIEWER_THRESHOLD) {
+                openFileView(path);
+                return;
+            }
+            try (var view = new MappedFileView(path)) {
+                long offset = 0;
+                while (offset < view.size()) {
+                    var page = view.page(offset, false);
+                    if (headless) // there is no viewer; stream every page
+                        writeHeadlessOutput(page.text());
+                    else
+                        output.append(page.text());
+                    offset = page.end();
+                }
+            }
+            outputln();
         } catch (IOException e) {
             outputln(STR."Failed to read file: \{e.getMessage()}");
         }
@@ -156,7 +210,8 @@ public class FileReaderApp extends Application {
     private void showJsonInBrowser(String json) {
         String jsonViewer = STR."https://codebeautify.org/jsonviewer?input=\{json}";
         println(jsonViewer);
-        getHostServices().showDocument(jsonViewer);
+        if (!headless)
+            getHostServices().showDocument(jsonViewer);
     }
 
     private Optional<String> getDialogText(String prompt) {
@@ -167,10 +222,27 @@ public class FileReaderApp extends Application {
     }
 
     private String input(String prompt) {
-        var text = getDialogText(prompt);
+        var text = headless ? readHeadlessInput(prompt) : getDialogText(prompt);
         return text.orElse("");
     }
 
+    /**
+     * Reads the answer to a prompt from {@code headlessIn} (stdin unless run by
+     * BatchGrader). The prompt goes to {@code headlessErr} so the output holds
+     * only what the program prints. End of input is treated like Cancel.
+     */
+    private Optional<String> readHeadlessInput(String prompt) {
+        try {
+            synchronized (headlessIn) {
+                headlessErr.println(prompt);
+                headlessErr.flush();
+                return Optional.ofNullable(headlessIn.readLine());
+            }
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
     private int inputInt(String prompt) {
         try {
             return Integer.parseInt(input(prompt));
@@ -220,14 +292,63 @@ public class FileReaderApp extends Application {
     }
 
     private String insertLineBreaks(String text, int max) {
-        var sb = new StringBuilder(text);
-        int i = 0;
-        while ((i = sb.indexOf(" ", i + max)) != -1)
-            sb.replace(i, i + 1, "\n");
-        return sb.toString();
+        return WordWrap.wrap(text, max);
+    }
+
+    /**
+     * Opens the file in the paged viewer that replaces the output area until
+     * Close File is pressed. The scroll bar beside the viewer spans the whole
+     * file; moving it maps and decodes only the page at that position.
+     * @param path the file to view
+     */
+    private void openFileView(Path path) throws IOException {
+        closeFileView();
+        fileView = new MappedFileView(path);
+        fileScroller.setMin(0);
+        // the bottom of the bar shows the last full page, which ends at the end of the file
+        fileScroller.setMax(Math.max(0, fileView.size() - MappedFileView.PAGE_BYTES));
+        fileScroller.setVisibleAmount(MappedFileView.PAGE_BYTES);
+        fileScroller.setUnitIncrement(MappedFileView.PAGE_BYTES / 8.0);
+        fileScroller.setBlockIncrement(MappedFileView.PAGE_BYTES);
+        fileScroller.setValue(0);
+        showFilePage(0);
+        root.setCenter(fileViewPane);
+        closeViewBtn.setVisible(true);
+        closeViewBtn.setManaged(true);
+    }
+
+    private void showFilePage(long offset) {
+        if (fileView == null)
+            return;
+        try {
+            var page = fileView.page(offset, true);
+            fileViewArea.setText(page.text());
+            status.setText(FMT."\{fileView.path().getFileName()}: bytes %,d\{page.start()}-%,d\{page.end()} of %,d\{fileView.size()}");
+        } catch (IOException e) {
+            status.setText(e.getMessage());
+        }
+    }
+
+    private void closeFileView() {
+        if (fileView == null)
+            return;
+        try {
+            fileView.close();
+        } catch (IOException e) {
+            println(e);
+        }
+        fileView = null;
+        fileViewArea.clear();
+        root.setCenter(display);
+        closeViewBtn.setVisible(false);
+        closeViewBtn.setManaged(false);
     }
 
     private void showMessage(String message) {
+        if (headless) {
+            headlessErr.println(message);
+            return;
+        }
         var alert = new Alert(AlertType.INFORMATION, message);
         alert.showAndWait();
     }
@@ -236,21 +357,46 @@ public class FileReaderApp extends Application {
         var stringValue = String.valueOf(value);
         if (stringValue.isEmpty())
             return;
-        output.append(stringValue);
-        updateOutput();
+        if (headless)
+            writeHeadlessOutput(stringValue);
+        else {
+            output.append(stringValue);
+            updateOutput();
+        }
     }
 
     private void outputln(Object value) {
         var stringValue = String.valueOf(value);
         if (stringValue.isEmpty())
             return;
-        output.append(stringValue).append("\n");
-        updateOutput();
+        if (headless)
+            writeHeadlessOutput(stringValue + "\n");
+        else {
+            output.append(stringValue).append("\n");
+            updateOutput();
+        }
     }
 
     private void outputln() {
-        output.append("\n");
-        updateOutput();
+        if (headless)
+            writeHeadlessOutput("\n");
+        else {
+            output.append("\n");
+            updateOutput();
+        }
+    }
+
+    /**
+     * The headless counterpart of {@code updateOutput}: text goes straight to
+     * {@code headlessOut} (stdout or the --out file). Synchronized for
+     * programs that print from several threads.
+     */
+    private synchronized void writeHeadlessOutput(String text) {
+        try {
+            headlessOut.write(text);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
     }
 
     private void updateOutput() {
@@ -265,10 +411,15 @@ public class FileReaderApp extends Application {
 
     private void clearOutput() {
         output.setLength(0);
-        display.setText(output.toString());
+        if (!headless)
+            display.setText(output.toString());
     }
 
     private void clear() {
+        if (headless) {
+            Arrays.fill(fieldValues, "");
+            return;
+        }
         for (var field : fields)
             field.setText("");
     }
@@ -278,34 +429,42 @@ public class FileReaderApp extends Application {
     }
 
     private void clearField(int index) {
-        if (isValidIndex(index))
-            fields[index].setText("");
+        setField(index, "");
     }
 
     private TextField getTextField(int index) {
-        return isValidIndex(index) ? fields[index] : null;
+        return isValidIndex(index) && !headless ? fields[index] : null;
     }
 
     private String getField(int index) {
-        return isValidIndex(index) ? fields[index].getText() : "";
+        if (!isValidIndex(index))
+            return "";
+        return headless ? fieldValues[index] : fields[index].getText();
     }
 
     private void setField(int index, String value) {
-        if (isValidIndex(index))
+        if (isValidIndex(index) && headless)
+            fieldValues[index] = value;
+        else if (isValidIndex(index))
             fields[index].setText(value);
     }
 
     private String getLabel(int index) {
-        return isValidIndex(index) ? labels[index].getText() : "";
+        if (!isValidIndex(index))
+            return "";
+        return headless ? fieldPrompts[index] : labels[index].getText();
     }
 
     private void setLabel(int index, String value) {
-        if (isValidIndex(index))
+        if (isValidIndex(index) && headless)
+            fieldPrompts[index] = value;
+        else if (isValidIndex(index))
             labels[index].setText(value);
     }
 
     private void setFormInstructions(String value) {
-        instructions.setText(value);
+        if (!headless)
+            instructions.setText(value);
     }
 
     /**
@@ -315,10 +474,22 @@ public class FileReaderApp extends Application {
      * objects are part of an array called fields. The companion method
      * getField(0) returns the String value that the user enters in the first
      * field.
+     * In headless mode no controls are created; the prompts and values are
+     * kept as strings and filled in from the command line.
      *
      * @param prompts (prompts can be empty and in such case no form is generated.
      */
     private void createForm(String... prompts) {
+        if (headless) {
+            rows = prompts.length;
+            nextRow = rows + 1;
+            fieldValues = new String[rows];
+            fieldPrompts = new String[rows];
+            Arrays.fill(fieldValues, "");
+            for (int i = 0; i < rows; i++)
+                fieldPrompts[i] = (prompts[i].startsWith("p-") ? prompts[i].substring(2) : prompts[i]) + ":";
+            return;
+        }
         form.add(instructions, 1, 0);
         form.setAlignment(Pos.CENTER_LEFT);
         var column1 = new ColumnConstraints();
@@ -367,8 +538,362 @@ public class FileReaderApp extends Application {
         System.out.println(value);
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        if (Arrays.asList(args).contains("--headless"))
+            System.exit(runHeadless(args));
         launch(args);
     } // end main
+
+    /**
+     * Entry point for headless runs of the compiled class, which the java
+     * launcher would otherwise start the JavaFX toolkit for; see
+     * AppBuilder.Headless.
+     */
+    public static final class Headless {
+
+        private Headless() {
+        }
+
+        public static void main(String[] args) throws Exception {
+            System.exit(runHeadless(args));
+        }
+    } // end Headless
+
+    /**
+     * Runs setup() and run() without starting JavaFX, as AppBuilder --headless
+     * does: form fields are filled from the arguments in order or from
+     * --props=FILE, output goes to stdout or --out=FILE, and answers to
+     * input() prompts are read from stdin.
+     *
+     * @return 0 when run() completes, 1 when it throws, 2 for bad arguments
+     */
+    private static int runHeadless(String[] args) throws Exception {
+        var values = new ArrayList<String>();
+        var props = new Properties();
+        Path outPath = null;
+        for (var arg : args) {
+            if (arg.equals("--headless"))
+                continue;
+            if (arg.startsWith("--props=")) {
+                try (var in = Files.newBufferedReader(Paths.get(arg.substring(8)), StandardCharsets.UTF_8)) {
+                    props.load(in);
+                }
+            } else if (arg.startsWith("--out=")) {
+                outPath = Paths.get(arg.substring(6));
+            } else if (arg.startsWith("--")) {
+                System.err.println("Unknown option " + arg);
+                return 2;
+            } else values.add(arg);
+        }
+
+        try (var writer = outPath == null
+                ? new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out),
+                        StandardCharsets.UTF_8), 1 << 16)
+                : Files.newBufferedWriter(outPath, StandardCharsets.UTF_8)) {
+            var stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            return runHeadless(writer, new PrintWriter(System.err, true), stdin, values, props);
+        }
+    }
+
+    /**
+     * Runs one headless instance of the program: setup(), the field values,
+     * then run(). This is also the entry point BatchGrader calls through
+     * reflection, so it only takes JDK types and never exits the JVM.
+     *
+     * @param out receives everything the program outputs
+     * @param err receives input() prompts, messages and exceptions
+     * @param in supplies the answers to input() prompts
+     * @param values field values in form order; these win over props
+     * @param props field values keyed by prompt text or field index
+     * @return 0 when run() completes, 1 when it throws
+     */
+    private static int runHeadless(Writer out, PrintWriter err, BufferedReader in,
+                                   List<String> values, Properties props) {
+        headless = true;
+        var app = new FileReaderApp();
+        app.headlessOut = out;
+        app.headlessErr = err;
+        app.headlessIn = in;
+        try {
+            app.setup();
+        } catch (Exception e) {
+            err.println(e);
+        }
+        for (int i = 0; i < app.rows; i++) {
+            var prompt = app.fieldPrompts[i].substring(0, app.fieldPrompts[i].length() - 1);
+            var value = props.getProperty(prompt, props.getProperty(String.valueOf(i)));
+            if (i < values.size())
+                value = values.get(i);
+            if (value != null)
+                app.fieldValues[i] = value;
+        }
+        try {
+            app.run();
+            return 0;
+        } catch (Exception e) {
+            e.printStackTrace(err);
+            return 1;
+        } finally {
+            err.flush();
+        }
+    }
+
+    /**
+     * Creates a control, or returns null in headless mode. JavaFX controls
+     * cannot be constructed before the toolkit starts, so every control field
+     * is built through this method.
+     */
+    private static <T> T gui(Supplier<T> factory) {
+        return headless ? null : factory.get();
+    }
+
+    /**
+     * A read-only view of a UTF-8 text file that maps and decodes one page
+     * at a time with {@code FileChannel.map}. Nothing but the requested
+     * page is ever copied onto the heap, so the cost of opening or moving
+     * around a file does not depend on its size.
+     */
+    private static final class MappedFileView implements Closeable {
+        static final int PAGE_BYTES = 256 * 1024;
+
+        private final Path path;
+        private final FileChannel channel;
+        private final long size;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        record Page(long start, long end, String text) {}
+
+        MappedFileView(Path path) throws IOException {
+            this.path = path;
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            size = channel.size();
+        }
+
+        Path path() {
+            return path;
+        }
+
+        long size() {
+            return size;
+        }
+
+        /**
+         * Decodes up to PAGE_BYTES starting at offset. The page ends after its
+         * last complete line unless it reaches the end of the file. When
+         * alignStart is true a partial line at the start is skipped as well,
+         * so an arbitrary offset such as a scroll position shows whole lines.
+         * A line longer than a page is split on a character boundary.
+         */
+        Page page(long offset, boolean alignStart) throws IOException {
+            long start = Math.max(0, Math.min(offset, size));
+            long mapStart = alignStart && start > 0 ? start - 1 : start;
+            long end = Math.min(size, start + PAGE_BYTES);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, end - mapStart);
+            int from = (int) (start - mapStart);
+            int to = buffer.limit();
+            if (mapStart < start) {
+                int newline = indexOf(buffer, (byte) '\n', 0, to);
+                from = newline >= 0 ? newline + 1 : charBoundary(buffer, from, to);
+            }
+            if (end < size) {
+                int newline = lastIndexOf(buffer, (byte) '\n', from, to);
+                to = newline >= 0 ? newline + 1 : charBoundary(buffer, to, from);
+                if (to <= from) // not valid UTF-8; take the raw page rather than stall
+                    to = buffer.limit();
+            }
+            String text = decoder.decode(buffer.slice(from, to - from)).toString();
+            return new Page(mapStart + from, mapStart + to, text);
+        }
+
+        private static int indexOf(ByteBuffer buffer, byte value, int from, int to) {
+            for (int i = from; i < to; i++)
+                if (buffer.get(i) == value)
+                    return i;
+            return -1;
+        }
+
+        private static int lastIndexOf(ByteBuffer buffer, byte value, int from, int to) {
+            for (int i = to - 1; i >= from; i--)
+                if (buffer.get(i) == value)
+                    return i;
+            return -1;
+        }
+
+        // moves index toward limit until it is not inside a UTF-8 multi-byte sequence
+        private static int charBoundary(ByteBuffer buffer, int index, int limit) {
+            int step = index <= limit ? 1 : -1;
+            while (index != limit && index < buffer.limit() && (buffer.get(index) & 0xC0) == 0x80)
+                index += step;
+            return index;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    } // end MappedFileView
+
+    /**
+     * Greedy word wrap in a single pass. The current word is held back (never
+     * more than one line of it) until a space or newline shows whether it
+     * still fits on the current line, so wrapping costs time linear in the
+     * text and the only buffers are a line wide. Existing newlines end a line
+     * and reset the column; the spaces at a wrap point become the line
+     * break; a word wider than a line is split at the width. Columns are
+     * counted per code point with columns(int), so wide CJK characters take
+     * two and combining accents none, as in a terminal or monospaced font.
+     * <p>
+     * An instance keeps its column between calls, so a stream can be wrapped
+     * piece by piece as it arrives: call wrap for each piece, then flush
+     * once the held back word should be written too.
+     */
+    private static final class WordWrap {
+        private final int width;
+        private final StringBuilder word = new StringBuilder();
+        private final StringBuilder spaces = new StringBuilder();
+        private int wordColumns = 0;
+        private int column = 0; // columns already written on the current line
+        private char highSurrogate = 0; // first half of a pair split across calls
+
+        WordWrap(int width) {
+            if (width < 1)
+                throw new IllegalArgumentException("width must be positive: " + width);
+            this.width = width;
+        }
+
+        static String wrap(CharSequence text, int width) {
+            var wrapped = new StringBuilder(text.length() + text.length() / width + 16);
+            var wrapper = new WordWrap(width);
+            wrapper.wrap(text, wrapped);
+            wrapper.flush(wrapped);
+            return wrapped.toString();
+        }
+
+        static void wrap(Reader in, Writer out, int width) throws IOException {
+            var wrapper = new WordWrap(width);
+            var chunk = new char[8192];
+            var wrapped = new StringBuilder();
+            for (int n; (n = in.read(chunk)) != -1; wrapped.setLength(0)) {
+                wrapper.wrap(CharBuffer.wrap(chunk, 0, n), wrapped);
+                out.append(wrapped);
+            }
+            wrapper.flush(wrapped);
+            out.append(wrapped);
+        }
+
+        /** Wraps the next piece of a stream and flushes it, for output that must show at once. */
+        String wrapNext(CharSequence text) {
+            var wrapped = new StringBuilder(text.length() + 16);
+            wrap(text, wrapped);
+            flush(wrapped);
+            return wrapped.toString();
+        }
+
+        void wrap(CharSequence text, StringBuilder out) {
+            for (int i = 0, n = text.length(); i < n; i++) {
+                char c = text.charAt(i);
+                if (highSurrogate != 0) {
+                    char high = highSurrogate;
+                    highSurrogate = 0;
+                    if (Character.isLowSurrogate(c)) {
+                        add(Character.toCodePoint(high, c), out);
+                        continue;
+                    }
+                    add(high, out);
+                }
+                if (Character.isHighSurrogate(c))
+                    highSurrogate = c;
+                else
+                    add(c, out);
+            }
+        }
+
+        /** Writes the held back word and spaces; the column carries on. */
+        void flush(StringBuilder out) {
+            if (highSurrogate != 0) {
+                add(highSurrogate, out);
+                highSurrogate = 0;
+            }
+            writeWord(out);
+            writeSpaces(out);
+        }
+
+        private void add(int codePoint, StringBuilder out) {
+            switch (codePoint) {
+                case '\n' -> {
+                    writeWord(out);
+                    writeSpaces(out);
+                    out.append('\n');
+                    column = 0;
+                }
+                case ' ', '\t' -> { // a tab counts as one column
+                    writeWord(out);
+                    if (spaces.length() < width)
+                        spaces.append((char) codePoint);
+                }
+                default -> {
+                    int columns = columns(codePoint);
+                    if (wordColumns + columns > width) { // no line can hold it; split at the width
+                        if (column > 0)
+                            out.append('\n');
+                        out.append(word).append('\n');
+                        word.setLength(0);
+                        spaces.setLength(0);
+                        wordColumns = 0;
+                        column = 0;
+                    }
+                    word.appendCodePoint(codePoint);
+                    wordColumns += columns;
+                }
+            }
+        }
+
+        private void writeWord(StringBuilder out) {
+            if (word.isEmpty())
+                return;
+            if (column + spaces.length() + wordColumns <= width) {
+                out.append(spaces);
+                column += spaces.length();
+            } else if (column > 0) {
+                out.append('\n');
+                column = 0;
+            }
+            out.append(word);
+            column += wordColumns;
+            word.setLength(0);
+            spaces.setLength(0);
+            wordColumns = 0;
+        }
+
+        private void writeSpaces(StringBuilder out) {
+            if (column + spaces.length() <= width) {
+                out.append(spaces);
+                column += spaces.length();
+            }
+            spaces.setLength(0);
+        }
+
+        /** Display width: 0 for controls and combining marks, 2 for East Asian wide characters. */
+        static int columns(int codePoint) {
+            if (codePoint >= 0x20 && codePoint < 0x7f)
+                return 1;
+            return switch (Character.getType(codePoint)) {
+                case Character.CONTROL, Character.FORMAT, Character.NON_SPACING_MARK, Character.ENCLOSING_MARK -> 0;
+                default -> isWide(codePoint) ? 2 : 1;
+            };
+        }
+
+        private static boolean isWide(int cp) {
+            return cp >= 0x1100 && (cp <= 0x115f || cp == 0x2329 || cp == 0x232a
+                    || (cp >= 0x2e80 && cp <= 0xa4cf && cp != 0x303f)
+                    || (cp >= 0xac00 && cp <= 0xd7a3) || (cp >= 0xf900 && cp <= 0xfaff)
+                    || (cp >= 0xfe10 && cp <= 0xfe19) || (cp >= 0xfe30 && cp <= 0xfe6f)
+                    || (cp >= 0xff00 && cp <= 0xff60) || (cp >= 0xffe0 && cp <= 0xffe6)
+                    || (cp >= 0x1f300 && cp <= 0x1f64f) || (cp >= 0x1f900 && cp <= 0x1f9ff)
+                    || (cp >= 0x20000 && cp <= 0x3fffd));
+        }
+    } // end WordWrap
 } // end class
 